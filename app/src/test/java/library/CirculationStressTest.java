@@ -0,0 +1,81 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static library.LibraryManagementSystem.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Hammers the engine from several threads over a small, heavily contended
+// catalog and fails if any book is ever held by two users at once, or if the
+// loans left at the end disagree with the book statuses.
+// -Dlibrary.stressOps sets the operations per thread.
+class CirculationStressTest {
+    private static final int BOOKS = 64, USERS = 100;
+
+    private final AtomicIntegerArray holders = new AtomicIntegerArray(BOOKS + 1);
+    private final AtomicLong violations = new AtomicLong();
+    private final LibraryListener checker = new LibraryListener() {
+        @Override
+        public void bookIssued(Book book, int userId, LocalDate dueDate) {
+            if (!holders.compareAndSet(book.id, 0, userId)) violations.incrementAndGet();
+        }
+
+        @Override
+        public void bookReturned(Book book, int userId, double fine) {
+            if (!holders.compareAndSet(book.id, userId, 0)) violations.incrementAndGet();
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        resetState();
+        for (int i = 1; i <= BOOKS; i++) catalog.put(new Book(i, "Title " + i, "Author", "Stress"));
+        for (int i = 1; i <= USERS; i++) users.add(new User(i, "user" + i, "pw", "USER", 0.0));
+        bookSequence.advancePast(BOOKS);
+        userSequence.advancePast(USERS);
+        listeners.add(checker);
+    }
+
+    @AfterEach
+    void tearDown() {
+        listeners.remove(checker);
+        resetState();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4, 8})
+    void noBookIsIssuedTwice(int threads) throws InterruptedException {
+        int opsPerThread = Integer.getInteger("library.stressOps", 50_000);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                for (int i = 0; i < opsPerThread; i++) {
+                    int bookId = 1 + random.nextInt(BOOKS);
+                    int userId = 1 + random.nextInt(USERS);
+                    int op = random.nextInt(10);
+                    if (op < 5) circulation.issue(bookId, op == 0 ? holds.shelvedFor(bookId) : userId);
+                    else if (op < 9) circulation.returnBook(bookId);
+                    else if (random.nextBoolean()) circulation.reserve(bookId, userId);
+                    else circulation.cancel(bookId, userId);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+
+        assertEquals(0, violations.get(), "double issues or returns by a non-holder");
+        for (int id = 1; id <= BOOKS; id++) {
+            Integer holder = issuedBooks.get(id);
+            assertEquals(holders.get(id), holder == null ? 0 : holder, "holder of book " + id);
+            assertEquals(holder != null, catalog.get(id).status == BookStatus.ISSUED, "status of book " + id);
+        }
+    }
+}
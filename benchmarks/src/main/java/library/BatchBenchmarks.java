@@ -0,0 +1,101 @@
+package library;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import static library.LibraryManagementSystem.*;
+
+// Checks out and returns a desk's worth of books one call at a time and as one
+// batch each way, with and without the write-ahead log. Scores are per book.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlibrary.dataDir="})
+public class BatchBenchmarks {
+    static final int BATCH = 200;
+
+    @Param({"10000", "1000000"})
+    public int catalogSize;
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    SyntheticLibrary library;
+    CirculationService circulationService;
+    Path journalDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        library = SyntheticLibrary.generate(catalogSize);
+        circulationService = new DefaultCirculationService();
+        if (journaled) {
+            journalDir = Files.createTempDirectory("batch-bench");
+            journal = LibraryJournal.open(journalDir);
+            listeners.add(journal);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (journal == null) return;
+        listeners.remove(journal);
+        journal.close();
+        journal = null;
+        try (Stream<Path> files = Files.walk(journalDir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    // A desk serving one patron at a time from its own run of shelved books
+    @State(Scope.Thread)
+    public static class Desk {
+        SplittableRandom rnd;
+        int firstBook, bookCount;
+
+        @Setup(Level.Trial)
+        public void setUp(BatchBenchmarks benchmark, ThreadParams thread) {
+            rnd = new SplittableRandom(thread.getThreadIndex());
+            firstBook = benchmark.library.firstFreeBook(thread.getThreadIndex(), thread.getThreadCount());
+            bookCount = benchmark.library.freeBooksPerThread(thread.getThreadCount());
+        }
+
+        List<Integer> books() {
+            int start = firstBook + rnd.nextInt(Math.max(1, bookCount - BATCH));
+            List<Integer> ids = new ArrayList<>(BATCH);
+            for (int i = 0; i < BATCH; i++) ids.add(start + i);
+            return ids;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void perItem(Desk desk, Blackhole bh) {
+        List<Integer> books = desk.books();
+        int userId = 1 + desk.rnd.nextInt(library.userCount);
+        for (int bookId : books) bh.consume(circulationService.issueBook(bookId, userId));
+        for (int bookId : books) bh.consume(circulationService.returnBook(bookId));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batched(Desk desk, Blackhole bh) {
+        List<Integer> books = desk.books();
+        int userId = 1 + desk.rnd.nextInt(library.userCount);
+        List<IssueRequest> requests = new ArrayList<>(BATCH);
+        for (int bookId : books) requests.add(new IssueRequest(bookId, userId));
+        bh.consume(circulationService.issueBooks(requests));
+        bh.consume(circulationService.returnBooks(books));
+    }
+}
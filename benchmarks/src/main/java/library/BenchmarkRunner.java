@@ -0,0 +1,35 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks single-threaded and again with one thread per core, then
+// writes every result to one JSON file (-rff, default jmh-result.json).
+// Accepts the usual JMH options, e.g. -p catalogSize=10000 for a quick run;
+// -t pins a single thread count.
+//   mvn -B package && java -jar benchmarks/target/benchmarks.jar
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = cli.getThreads().hasValue() ? List.of(cli.getThreads().get())
+            : cores > 1 ? List.of(1, cores) : List.of(1, 2);
+        
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder().parent(cli).threads(threads).build();
+            results.addAll(new Runner(options).run());
+        }
+        
+        String file = cli.getResult().orElse("jmh-result.json");
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, file).writeOut(results);
+        System.out.println("Results written to " + file);
+    }
+}
@@ -0,0 +1,72 @@
+package library;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import static library.LibraryManagementSystem.*;
+
+// Searches with and without the read-through cache on a skewed workload: four
+// queries in five use the hottest one percent of terms. Cached pages still
+// resolve their hits through the store, so both stores are measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlibrary.dataDir="})
+public class CacheBenchmarks {
+    static final int HOT_PERCENT = 80;
+    
+    @Param({"10000", "1000000"})
+    public int catalogSize;
+    
+    @Param({"indexed", "columnar"})
+    public String store;
+    
+    @Param({"false", "true"})
+    public boolean cached;
+    
+    BookService bookService;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("library.store", store);
+        SyntheticLibrary.generate(catalogSize);
+        bookService = new DefaultBookService();
+        if (cached) {
+            CachingBookService caching = new CachingBookService(bookService, 10_000, Duration.ofMinutes(5));
+            listeners.add(caching);
+            bookService = caching;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (bookService instanceof LibraryListener listener) listeners.remove(listener);
+    }
+    
+    @State(Scope.Thread)
+    public static class Patron {
+        SplittableRandom rnd;
+        
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams thread) {
+            rnd = new SplittableRandom(thread.getThreadIndex());
+        }
+        
+        // Picks from the hottest percent of the range most of the time
+        int skewed(int range) {
+            int hot = Math.max(1, range / 100);
+            return rnd.nextInt(100) < HOT_PERCENT ? rnd.nextInt(hot) : rnd.nextInt(range);
+        }
+    }
+    
+    @Benchmark
+    public SearchPage searchBook(Patron patron) {
+        String query = SyntheticLibrary.word(patron.skewed(SyntheticLibrary.VOCABULARY));
+        return bookService.searchBooks(query, 0, DefaultBookManager.SEARCH_PAGE_SIZE);
+    }
+}
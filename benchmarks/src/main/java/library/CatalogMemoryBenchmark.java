@@ -0,0 +1,54 @@
+package library;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static library.LibraryManagementSystem.*;
+
+// Heap retained by a catalog whose authors and categories repeat, as the
+// original ArrayList<Book>, the indexed store and the columnar store.
+//   java -cp benchmarks/target/benchmarks.jar library.CatalogMemoryBenchmark [books]
+public class CatalogMemoryBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long list = retained(() -> {
+            List<Book> books = new ArrayList<>();
+            for (int i = 1; i <= count; i++) books.add(book(i));
+            return books;
+        });
+        long indexed = retained(() -> fill(new IndexedCatalogStore(), count));
+        long columnar = retained(() -> fill(new ColumnarCatalogStore(), count));
+        double perMillion = 1_000_000.0 / count / (1 << 20);
+        System.out.printf("books=%,d%n", count);
+        System.out.printf("ArrayList<Book>  %8.1f MB per million books%n", list * perMillion);
+        System.out.printf("indexed store    %8.1f MB per million books%n", indexed * perMillion);
+        System.out.printf("columnar store   %8.1f MB per million books (%.1f MB saved vs ArrayList<Book>)%n",
+            columnar * perMillion, (list - columnar) * perMillion);
+    }
+    
+    private static CatalogStore fill(CatalogStore store, int count) {
+        for (int i = 1; i <= count; i++) store.put(book(i));
+        return store;
+    }
+    
+    // Fresh strings per row, the way a parser would produce them
+    private static Book book(int i) {
+        return new Book(i, "Title " + i, "Author " + (i % 50_000), "Category " + (i % 50));
+    }
+    
+    private static long retained(Supplier<Object> build) {
+        long before = usedAfterGc();
+        Object built = build.get();
+        long after = usedAfterGc();
+        Reference.reachabilityFence(built);
+        return after - before;
+    }
+    
+    private static long usedAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,74 @@
+package library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static library.LibraryManagementSystem.*;
+
+// Rebuilding the circulation analytics from a history file of a year of
+// issues, returns and fines, on one thread and on the common pool. Scores are
+// time per replay of the whole file.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class HistoryBenchmarks {
+    @Param({"1000000", "10000000"})
+    public int events;
+    
+    @Param({"false", "true"})
+    public boolean parallel;
+    
+    Path file;
+    FileChannel channel;
+    int retainFrom;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("history-bench", ".bin");
+        int today = (int) LocalDate.now().toEpochDay();
+        retainFrom = today - 364;
+        SplittableRandom rnd = new SplittableRandom(42);
+        int books = Math.max(1000, events / 20);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HistoryEvent.SIZE * 4096);
+            for (int i = 0; i < events; i++) {
+                int day = retainFrom + (int) ((long) i * 365 / events);
+                int bookId = 1 + rnd.nextInt(books), userId = 1 + rnd.nextInt(books / 10), category = rnd.nextInt(SyntheticLibrary.CATEGORIES);
+                HistoryEvent event = switch (i % 5) {
+                    case 0, 1 -> new HistoryEvent(HistoryEvent.ISSUE, category, day, bookId, userId, day + 14, 0);
+                    case 2, 3 -> new HistoryEvent(HistoryEvent.RETURN, category, day, bookId, userId, day - rnd.nextInt(21), day - 7);
+                    default -> new HistoryEvent(HistoryEvent.FINE, category, day, bookId, userId, 50 * (1 + rnd.nextInt(20)), 0);
+                };
+                if (!buffer.hasRemaining()) {
+                    out.write(buffer.flip());
+                    buffer.clear();
+                }
+                event.write(buffer);
+            }
+            out.write(buffer.flip());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.delete(file);
+    }
+    
+    @Benchmark
+    public CirculationHistory.Replayed replay() throws IOException {
+        return CirculationHistory.replay(channel, channel.size(), retainFrom, parallel);
+    }
+}
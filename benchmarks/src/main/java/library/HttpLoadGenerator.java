@@ -0,0 +1,92 @@
+package library;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static library.LibraryManagementSystem.*;
+
+// Starts the API on an ephemeral localhost port and drives it with many
+// concurrent virtual-thread clients doing a search/issue/return mix. Hash cost
+// defaults to 1000 iterations so logging the clients in stays quick; pass
+// -Dlibrary.passwordIterations to change it.
+//   java -cp benchmarks/target/benchmarks.jar library.HttpLoadGenerator [clients] [requestsPerClient]
+public class HttpLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("library.passwordIterations") == null) System.setProperty("library.passwordIterations", "1000");
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int bookCount = 10_000, userCount = 1_000;
+        
+        BookService bookService = new DefaultBookService();
+        UserService userService = new DefaultUserService();
+        String[] words = {"river", "garden", "winter", "shadow", "empire", "ocean", "silver", "machine"};
+        for (int i = 1; i <= bookCount; i++) {
+            bookService.addBook(words[i % words.length] + " " + words[(i / 8) % words.length] + " " + i,
+                "Author " + (i % 500), "Category " + (i % 20));
+        }
+        String[] tokens = new String[userCount + 1];
+        for (int i = 1; i <= userCount; i++) {
+            userService.createUserAccount("user" + i, "pw", "USER");
+            tokens[i] = userService.openSession("user" + i, "pw").token();
+        }
+        
+        LibraryHttpServer server = new LibraryHttpServer(0, bookService, userService, new DefaultCirculationService());
+        server.start();
+        String base = "http://localhost:" + server.port();
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        long[] latencies = new long[clients * requestsPerClient];
+        AtomicLong failures = new AtomicLong();
+        
+        long start = System.nanoTime();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int slot = c * requestsPerClient;
+                pool.submit(() -> {
+                    Random random = new Random();
+                    for (int i = 0; i < requestsPerClient; i++) {
+                        int bookId = 1 + random.nextInt(bookCount), userId = 1 + random.nextInt(userCount);
+                        HttpRequest request = switch (random.nextInt(5)) {
+                            case 0, 1, 2 -> HttpRequest.newBuilder(URI.create(base + "/search?q="
+                                + words[random.nextInt(words.length)] + "&limit=10")).GET().build();
+                            case 3 -> post(base + "/issue", tokens[userId], "bookId=" + bookId);
+                            default -> post(base + "/return", tokens[userId], "bookId=" + bookId);
+                        };
+                        long t0 = System.nanoTime();
+                        try {
+                            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                            if (response.statusCode() >= 500 || response.statusCode() == 401) failures.incrementAndGet();
+                        } catch (IOException | InterruptedException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[slot + i] = System.nanoTime() - t0;
+                    }
+                    return null;
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        server.stop();
+        
+        Arrays.sort(latencies);
+        System.out.printf("clients=%d requests=%d  %,.0f req/s  p50=%.2f ms  p99=%.2f ms  max=%.2f ms  failures=%d%n",
+            clients, latencies.length, latencies.length / (nanos / 1e9),
+            latencies[latencies.length / 2] / 1e6, latencies[(int) (latencies.length * 0.99)] / 1e6,
+            latencies[latencies.length - 1] / 1e6, failures.get());
+        if (failures.get() > 0) throw new AssertionError(failures.get() + " failed requests");
+    }
+    
+    private static HttpRequest post(String url, String token, String form) {
+        return HttpRequest.newBuilder(URI.create(url))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .header("Authorization", "Bearer " + token)
+            .POST(HttpRequest.BodyPublishers.ofString(form)).build();
+    }
+}
@@ -0,0 +1,78 @@
+package library;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static library.LibraryManagementSystem.*;
+
+// Measures log append throughput and snapshot-plus-replay startup time.
+//   java -cp benchmarks/target/benchmarks.jar library.JournalBenchmark [records] [catalogSize]
+public class JournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int catalogSize = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        Path dir = Files.createTempDirectory("journal-bench");
+        Path copy = Files.createTempDirectory("journal-bench");
+        try {
+            for (int threads : new int[] {1, 4}) {
+                resetState();
+                deleteAll(dir);
+                LibraryJournal journal = LibraryJournal.open(dir, Long.MAX_VALUE, 5);
+                Book book = new Book(1, "Benchmark Title", "Benchmark Author", "Benchmark");
+                long start = System.nanoTime();
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    workers[t] = new Thread(() -> {
+                        for (int i = 0; i < records / threads; i++) journal.bookAdded(book);
+                    });
+                    workers[t].start();
+                }
+                for (Thread w : workers) w.join();
+                journal.sync();
+                long nanos = System.nanoTime() - start;
+                System.out.printf("append  threads=%d records=%d  %,.0f records/s%n",
+                    threads, records, records / (nanos / 1e9));
+                journal.close();
+            }
+            
+            resetState();
+            deleteAll(dir);
+            LibraryJournal journal = LibraryJournal.open(dir, Long.MAX_VALUE, 5);
+            for (int i = 1; i <= catalogSize; i++) {
+                Book b = new Book(i, "Title " + i, "Author " + (i % 5_000), "Category " + (i % 50));
+                catalog.put(b);
+                if (i <= catalogSize / 2) journal.bookAdded(b);
+            }
+            journal.snapshot();
+            for (Book b : catalog.all()) {
+                if (b.id > catalogSize / 2) journal.bookAdded(b);
+            }
+            journal.sync();
+            // Closing would snapshot the log away, so recovery starts from a copy
+            try (var files = Files.list(dir)) {
+                for (Path p : files.toList()) Files.copy(p, copy.resolve(p.getFileName()));
+            }
+            journal.close();
+            
+            resetState();
+            long start = System.nanoTime();
+            LibraryJournal recovered = LibraryJournal.open(copy, Long.MAX_VALUE, 5);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("startup books=%d (half snapshot, half log)  %.1f ms%n", catalog.size(), nanos / 1e6);
+            recovered.close();
+        } finally {
+            for (Path d : List.of(dir, copy)) {
+                deleteAll(d);
+                Files.deleteIfExists(d);
+            }
+        }
+    }
+    
+    private static void deleteAll(Path dir) throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path p : files.toList()) Files.delete(p);
+        }
+    }
+}
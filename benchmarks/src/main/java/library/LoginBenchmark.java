@@ -0,0 +1,52 @@
+package library;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static library.LibraryManagementSystem.*;
+
+// Login throughput through the username index, with full hash verification
+// and with session lookups. Hash cost defaults to 1000 iterations here so the
+// setup stays short; pass -Dlibrary.passwordIterations to measure the real cost.
+//   java -cp benchmarks/target/benchmarks.jar library.LoginBenchmark [users] [threads] [seconds]
+public class LoginBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        if (System.getProperty("library.passwordIterations") == null) System.setProperty("library.passwordIterations", "1000");
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        UserService service = new DefaultUserService();
+        for (int i = 0; i < userCount; i++) service.createUserAccount("user" + i, "secret" + i, "USER");
+        System.out.printf("users=%d threads=%d iterations=%d%n", userCount, threads, PasswordHash.ITERATIONS);
+        
+        run("login", threads, seconds, rnd -> {
+            int i = rnd.nextInt(userCount);
+            if (service.login("user" + i, "secret" + i) == null) throw new AssertionError("login failed for user" + i);
+        });
+        String[] tokens = new String[userCount];
+        for (int i = 0; i < userCount; i++) tokens[i] = service.openSession("user" + i, "secret" + i).token();
+        run("session", threads, seconds, rnd -> {
+            if (service.session(tokens[rnd.nextInt(userCount)]) == null) throw new AssertionError("session expired");
+        });
+    }
+    
+    private static void run(String name, int threads, long seconds, Consumer<ThreadLocalRandom> op) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    op.accept(rnd);
+                    ops.increment();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        System.out.printf("%-8s %,12.0f ops/s%n", name, ops.sum() / (double) seconds);
+    }
+}
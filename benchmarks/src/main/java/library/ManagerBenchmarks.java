@@ -0,0 +1,95 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import static library.LibraryManagementSystem.*;
+
+// One benchmark per console operation, run through the same services the
+// managers use so nothing is printed. Throughput and sampled latency are both
+// reported; thread count comes from the runner (see BenchmarkRunner).
+// The generated library keeps about 1 GB live per million books, so 4 GB
+// covers the 1M catalog; a 10M run needs its own fork heap, e.g.
+//   -p catalogSize=10000000 -jvmArgsAppend "-Xmx14g -Dlibrary.dataDir="
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlibrary.dataDir="})
+public class ManagerBenchmarks {
+    @Param({"10000", "1000000"})
+    public int catalogSize;
+    
+    SyntheticLibrary library;
+    BookService bookService;
+    CirculationService circulationService;
+    ReportingBookManager reports;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = SyntheticLibrary.generate(catalogSize);
+        bookService = new DefaultBookService();
+        circulationService = new DefaultCirculationService();
+        reports = new ReportingBookManager(null);
+    }
+    
+    // Per-thread random source plus a private run of shelved books, so issue
+    // and reserve benchmarks measure the operation rather than lost races
+    @State(Scope.Thread)
+    public static class Patron {
+        SplittableRandom rnd;
+        int firstBook, bookCount;
+        
+        @Setup(Level.Trial)
+        public void setUp(ManagerBenchmarks benchmark, ThreadParams thread) {
+            rnd = new SplittableRandom(thread.getThreadIndex());
+            firstBook = benchmark.library.firstFreeBook(thread.getThreadIndex(), thread.getThreadCount());
+            bookCount = benchmark.library.freeBooksPerThread(thread.getThreadCount());
+        }
+        
+        int book() { return firstBook + rnd.nextInt(bookCount); }
+        int user(SyntheticLibrary library) { return 1 + rnd.nextInt(library.userCount); }
+    }
+    
+    @Benchmark
+    public SearchPage searchBook(Patron patron) {
+        String query = SyntheticLibrary.word(patron.rnd.nextInt(SyntheticLibrary.VOCABULARY));
+        return bookService.searchBooks(query, 0, DefaultBookManager.SEARCH_PAGE_SIZE);
+    }
+    
+    // Issue and return are paired so the shelf never runs dry mid-iteration
+    @Benchmark
+    public void issueAndReturnBook(Patron patron, Blackhole bh) {
+        int bookId = patron.book();
+        bh.consume(circulationService.issueBook(bookId, patron.user(library)));
+        bh.consume(circulationService.returnBook(bookId));
+    }
+    
+    // A full hold cycle: issue, reserve for a second patron, return onto the hold
+    // shelf, pickup by that patron and return again
+    @Benchmark
+    public void reserveBook(Patron patron, Blackhole bh) {
+        int bookId = patron.book();
+        int reserver = patron.user(library);
+        bh.consume(circulationService.issueBook(bookId, patron.user(library)));
+        bh.consume(circulationService.reserveBook(bookId, reserver));
+        bh.consume(circulationService.returnBook(bookId));
+        bh.consume(circulationService.issueBook(bookId, reserver));
+        bh.consume(circulationService.returnBook(bookId));
+    }
+    
+    @Benchmark
+    public Page<Loan> viewOverdueBooks() {
+        return circulationService.overdueBooks(LocalDate.now(), Page.FIRST, CONSOLE_PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public String generateBookReport() {
+        return reports.bookReport();
+    }
+}
@@ -0,0 +1,50 @@
+package library;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static library.LibraryManagementSystem.*;
+
+// Cost of metering a service call: the same lookup plain and through its
+// metered decorator, plus a timer around an empty action. The difference is
+// the per-operation overhead of the metrics layer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlibrary.dataDir="})
+public class MetricsBenchmarks {
+    @Param({"10000"})
+    public int catalogSize;
+    
+    BookService plain;
+    BookService metered;
+    OperationTimer timer;
+    int bookId;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticLibrary.generate(catalogSize);
+        plain = new DefaultBookService();
+        metered = new MeteredBookService(plain);
+        timer = Metrics.timer("MetricsBenchmarks", "empty");
+    }
+    
+    @Benchmark
+    public Book getBook() {
+        bookId = bookId % catalogSize + 1;
+        return plain.getBook(bookId);
+    }
+    
+    @Benchmark
+    public Book meteredGetBook() {
+        bookId = bookId % catalogSize + 1;
+        return metered.getBook(bookId);
+    }
+    
+    @Benchmark
+    public void emptyTimer() {
+        timer.time(() -> { });
+    }
+}
@@ -0,0 +1,43 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static library.LibraryManagementSystem.*;
+
+// Cost of the loan policy on the circulation path: one rule lookup against a
+// compiled table with the given number of category-specific rules, cycling
+// through every role and a mix of listed and unlisted categories.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlibrary.dataDir="})
+public class PolicyBenchmarks {
+    @Param({"10", "1000"})
+    public int categoryRules;
+
+    LoanPolicy compiled;
+    String[] roles = {"USER", "PREMIUM", "LIBRARIAN", "USER"};
+    String[] categories;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> lines = new ArrayList<>(List.of("*,*,14,,0.50,,0", "PREMIUM,*,,20,0.25,10,", "LIBRARIAN,*,28,,0,,"));
+        for (int i = 0; i < categoryRules; i++) lines.add("*,Category " + i + "," + (7 + i % 21) + ",5,1.00,20,1");
+        compiled = LoanPolicy.parse(lines);
+        // Every other lookup is for a category without its own rules
+        categories = new String[1024];
+        for (int i = 0; i < categories.length; i++) categories[i] = "Category " + (i % 2 == 0 ? i % categoryRules : categoryRules + i);
+    }
+
+    @Benchmark
+    public LoanRule lookup() {
+        int i = next++ & 1023;
+        return compiled.rule(roles[i & 3], categories[i]);
+    }
+}
@@ -0,0 +1,75 @@
+package library;
+
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+import static library.LibraryManagementSystem.*;
+
+// Deterministic catalog, patron and loan sets for the benchmarks. For a catalog
+// of n books there are n / 10 patrons and n / 5 loans, half of them overdue;
+// the remaining books stay on the shelf for issue and reserve benchmarks.
+final class SyntheticLibrary {
+    static final int VOCABULARY = 4_096;
+    static final int CATEGORIES = 50;
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "ser", "ta", "vin", "dor", "el", "qua", "ris", "mon", "fe", "gra", "hul", "ni", "op"
+    };
+    
+    final int bookCount, userCount, loanCount;
+    
+    private SyntheticLibrary(int bookCount) {
+        this.bookCount = bookCount;
+        this.userCount = Math.max(10, bookCount / 10);
+        this.loanCount = bookCount / 5;
+    }
+    
+    // Replaces the global library state with a generated one
+    static SyntheticLibrary generate(int bookCount) {
+        SyntheticLibrary library = new SyntheticLibrary(bookCount);
+        resetState();
+        library.populate();
+        return library;
+    }
+    
+    private void populate() {
+        SplittableRandom rnd = new SplittableRandom(42);
+        BookService books = new DefaultBookService();
+        for (int i = 1; i <= bookCount; i++) {
+            String title = word(rnd.nextInt(VOCABULARY)) + " " + word(rnd.nextInt(VOCABULARY));
+            books.addBook(title, "Author " + rnd.nextInt(Math.max(1, bookCount / 20)), "Category " + rnd.nextInt(CATEGORIES));
+        }
+        
+        String hash = PasswordHash.hash("benchmark");
+        for (int id = 1; id <= userCount; id++) users.add(new User(id, "patron" + id, hash, "USER", 0.0));
+        userSequence.advancePast(userCount);
+        credentials.stateRecovered();
+        
+        LocalDate today = LocalDate.now();
+        for (int bookId = 1; bookId <= loanCount; bookId++) {
+            LocalDate due = bookId % 2 == 0 ? today.minusDays(1 + rnd.nextInt(60)) : today.plusDays(1 + rnd.nextInt(14));
+            issuedBooks.put(bookId, 1 + rnd.nextInt(userCount));
+            dueDates.put(bookId, due);
+            catalog.setStatus(catalog.get(bookId), BookStatus.ISSUED);
+        }
+        dueDateIndex.stateRecovered();
+        stats.stateRecovered();
+    }
+    
+    // Books after the loaned prefix, split evenly between benchmark threads
+    int firstFreeBook(int thread, int threads) {
+        return loanCount + 1 + thread * freeBooksPerThread(threads);
+    }
+    
+    int freeBooksPerThread(int threads) {
+        return Math.max(1, (bookCount - loanCount) / threads);
+    }
+    
+    static String word(int n) {
+        StringBuilder word = new StringBuilder();
+        do {
+            word.append(SYLLABLES[n % SYLLABLES.length]);
+            n /= SYLLABLES.length;
+        } while (n > 0);
+        return word.toString();
+    }
+}